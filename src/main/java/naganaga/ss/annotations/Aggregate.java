@@ -0,0 +1,24 @@
+package naganaga.ss.annotations;
+
+/**
+ * フッタ行に出力する集計の種類。
+ *
+ * <pre>
+ *     集計値は {@code writeBody} で行を書き込む度に更新され、{@code close} 時にフッタ行へ値として出力されます。
+ *     数式は出力しないため、Excel で開いた際の再計算は発生しません。
+ * </pre>
+ */
+public enum Aggregate {
+    /** 集計しない. */
+    NONE,
+    /** 合計. */
+    SUM,
+    /** 件数（空でない値の数）. */
+    COUNT,
+    /** 最小値. */
+    MIN,
+    /** 最大値. */
+    MAX,
+    /** 平均値. */
+    AVG
+}
@@ -15,4 +15,5 @@ public @interface Column {
     String header() default "";
     CellType cellType() default CellType.STRING;
     String format() default "General";
+    Aggregate aggregate() default Aggregate.NONE;
 }
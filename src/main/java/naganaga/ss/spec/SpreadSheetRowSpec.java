@@ -2,6 +2,7 @@ package naganaga.ss.spec;
 
 import lombok.Data;
 import lombok.extern.slf4j.Slf4j;
+import naganaga.ss.annotations.Aggregate;
 import naganaga.ss.annotations.BodyStyle;
 import naganaga.ss.annotations.Column;
 import naganaga.ss.annotations.HeaderStyle;
@@ -62,6 +63,7 @@ public class SpreadSheetRowSpec<T> {
             columnSpec.setIndex(spec.index());
             columnSpec.setHeader(spec.header());
             columnSpec.setFormat(spec.format());
+            columnSpec.setAggregate(spec.aggregate());
             columnSpec.setHeaderStyle(field.getDeclaredAnnotation(HeaderStyle.class));
             columnSpec.setBodyStyle(field.getDeclaredAnnotation(BodyStyle.class));
             return columnSpec;
@@ -120,8 +122,15 @@ public class SpreadSheetRowSpec<T> {
                 throw new IllegalArgumentException("An unsupported type was specified. type=[" + fieldType.getName() + "]");
             }
 
-            // index に飛び番、重複などがある場合は警告ログを出力する
+            // 件数以外の集計は数値列のみサポートするので、NUMERIC であることをチェック
             Column col = field.getDeclaredAnnotation(Column.class);
+            if (col.aggregate() != Aggregate.NONE && col.aggregate() != Aggregate.COUNT
+                    && col.cellType() != CellType.NUMERIC) {
+                throw new IllegalArgumentException("An unsupported aggregate was specified. type=["
+                        + this.type.getName() + "], field=[" + field.getName() + "], aggregate=[" + col.aggregate() + "]");
+            }
+
+            // index に飛び番、重複などがある場合は警告ログを出力する
             if (i != col.index()) {
                 log.warn("The index is not sequential number. type={}, field={}, expected={}, actual={}",
                         this.type.getName(), field.getName(), i, col.index());
@@ -137,6 +146,7 @@ public class SpreadSheetRowSpec<T> {
         private int width;
         private String header;
         private String format;
+        private Aggregate aggregate;
         private HeaderStyle headerStyle;
         private BodyStyle bodyStyle;
     }
@@ -0,0 +1,423 @@
+package naganaga.ss.writer;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.function.Consumer;
+
+/**
+ * 行を外部マージソートで並び替えるクラス。
+ * <pre>
+ *     保持している行の見積りサイズが上限を超える度に、並び替えた行を一時ファイル（ラン）へ退避します。
+ *     同じ階層のランが同時にマージできる数だけ揃う度にマージするため、ランの数は行数に対して対数的にしか増えません。
+ *     ランは以下の形式で出力します。
+ *       行: 1 バイトのマーカ (1) + 列数分の値 + 数値キー（8 バイト）、終端はマーカ (0)
+ *       値: 可変長の (バイト長 + 1)（null は 0）+ 修正 UTF-8 バイト列（サロゲートも欠落なく保持）
+ *     {@link #finish(Consumer)} ではランをマージしながら行を渡すため、全行をヒープに保持することはありません。
+ *     退避前の行は上限から出力バッファ 1 個分を除いたサイズまで保持し、マージ時の入出力バッファは上限の半分以内に抑えるため、
+ *     退避・マージのいずれの段階でもヒープ使用量は上限以内に収まります。
+ * </pre>
+ */
+@Slf4j
+class ExternalRowSorter implements AutoCloseable {
+
+    /** ラン 1 個あたりの入出力バッファサイズの最大値. */
+    private static final int MAX_BUFFER_SIZE = 64 * 1024;
+    /** 同時にマージするランの最大数（ファイルディスクリプタの枯渇防止）. */
+    private static final int MAX_FAN_IN = 128;
+    private static final int ROW_MARKER = 1;
+    private static final int END_MARKER = 0;
+
+    private final Comparator<SortRow> comparator;
+    private final boolean distinct;
+    private final Path tempDirectory;
+    private final int columnCount;
+    private final int keyCount;
+    private final int fanIn;
+    private final int bufferSize;
+    private final long spillThreshold;
+
+    private List<SortRow> buffer = new ArrayList<>();
+    private long bufferedBytes = 0;
+    private final List<Run> runs = new ArrayList<>();
+
+    /**
+     * コンストラクタ。
+     *
+     * @param comparator 行の比較順（重複除外時は全列が一致した場合のみ 0 を返すこと）
+     * @param option 並び替えの設定
+     * @param columnCount 1 行あたりの列数
+     * @param keyCount 1 行あたりの数値キーの数
+     */
+    ExternalRowSorter(Comparator<SortRow> comparator, SortOption option, int columnCount, int keyCount) {
+        this.comparator = comparator;
+        this.distinct = option.isDistinct();
+        this.tempDirectory = option.getTempDirectory();
+        this.columnCount = columnCount;
+        this.keyCount = keyCount;
+
+        // マージ時は fanIn 個の入力と 1 個の出力のバッファを同時に保持するため、上限の半分に収める
+        long memoryLimit = option.getMemoryLimit();
+        this.fanIn = (int) Math.max(2, Math.min(MAX_FAN_IN, memoryLimit / (2L * MAX_BUFFER_SIZE)));
+        this.bufferSize = (int) Math.min(MAX_BUFFER_SIZE, memoryLimit / (2L * (fanIn + 1)));
+        this.spillThreshold = memoryLimit - bufferSize;
+    }
+
+    /**
+     * 行を追加する。
+     *
+     * @param values 列の値
+     * @param keys 比較用に変換済の数値キー
+     * @throws IOException 一時ファイルへの退避に失敗した場合
+     */
+    void add(String[] values, double[] keys) throws IOException {
+        SortRow row = new SortRow(values, keys);
+        buffer.add(row);
+        bufferedBytes += estimateSize(row);
+        if (bufferedBytes >= spillThreshold) {
+            spill();
+        }
+    }
+
+    /**
+     * 追加された行を並び替えた順に渡す。
+     *
+     * @param consumer 行の受け取り先
+     * @throws IOException 一時ファイルの入出力に失敗した場合
+     */
+    void finish(Consumer<String[]> consumer) throws IOException {
+        Consumer<SortRow> valueConsumer = row -> consumer.accept(row.getValues());
+        if (runs.isEmpty()) {
+            // 上限に達しなかった場合は一時ファイルを使わずに並び替える
+            buffer.sort(comparator);
+            buffer.forEach(new RowEmitter(valueConsumer));
+            buffer = new ArrayList<>();
+            return;
+        }
+        if (!buffer.isEmpty()) {
+            spill();
+        }
+        buffer = null;
+
+        while (runs.size() > fanIn) {
+            int excess = runs.size() - fanIn;
+            if (excess < fanIn) {
+                // 1 回のマージで fanIn 以下に収まる場合は、必要な数のランのみをマージする
+                mergeRuns(0, excess + 1);
+            } else {
+                for (int pos = 0; runs.size() - pos > 1; pos++) {
+                    mergeRuns(pos, Math.min(fanIn, runs.size() - pos));
+                }
+            }
+        }
+        merge(runs, valueConsumer);
+    }
+
+    /**
+     * 隣接するランをマージし、元の位置に置き換える（ランの順序を保ち、安定な並び替えとする）。
+     * <pre>
+     *     作成したランは先に一覧へ追加し、失敗時も close で削除されるようにします。
+     * </pre>
+     */
+    private void mergeRuns(int from, int count) throws IOException {
+        List<Run> sources = runs.subList(from, from + count);
+        int level = sources.stream().mapToInt(source -> source.level).max().orElse(0) + 1;
+        Run run = new Run(createRunFile(), level);
+        runs.add(from, run);
+        List<Run> group = runs.subList(from + 1, from + 1 + count);
+        try (DataOutputStream out = openRun(run.path)) {
+            merge(group, row -> writeRow(out, row));
+            out.writeByte(END_MARKER);
+        }
+        for (Run source : group) {
+            Files.deleteIfExists(source.path);
+        }
+        group.clear();
+    }
+
+    private void spill() throws IOException {
+        buffer.sort(comparator);
+        Run run = new Run(createRunFile(), 0);
+        runs.add(run);
+        try (DataOutputStream out = openRun(run.path)) {
+            buffer.forEach(new RowEmitter(row -> writeRow(out, row)));
+            out.writeByte(END_MARKER);
+        }
+        log.debug("Rows spilled. rows={}, estimatedBytes={}, file={}", buffer.size(), bufferedBytes, run.path);
+        buffer = new ArrayList<>();
+        bufferedBytes = 0;
+
+        // 末尾の同じ階層のランが fanIn 個揃う度にマージし、ランの数を行数に関わらず抑える
+        // （階層は先頭から末尾へ単調に減少するため、末尾 fanIn 個の先頭と末尾の階層が一致すれば全て同じ階層）
+        while (runs.size() >= fanIn
+                && runs.get(runs.size() - fanIn).level == runs.get(runs.size() - 1).level) {
+            mergeRuns(runs.size() - fanIn, fanIn);
+        }
+    }
+
+    private void merge(List<Run> sources, Consumer<SortRow> consumer) throws IOException {
+        // 同値の行は先に出力されたランを優先し、安定な並び替えとする
+        PriorityQueue<RunReader> queue = new PriorityQueue<>(sources.size(), (r1, r2) -> {
+            int c = comparator.compare(r1.current, r2.current);
+            return c != 0 ? c : Integer.compare(r1.order, r2.order);
+        });
+        List<RunReader> readers = new ArrayList<>();
+        try {
+            for (int i = 0; i < sources.size(); i++) {
+                RunReader reader = new RunReader(sources.get(i), i);
+                readers.add(reader);
+                if (reader.next()) {
+                    queue.add(reader);
+                }
+            }
+            RowEmitter emitter = new RowEmitter(consumer);
+            while (!queue.isEmpty()) {
+                RunReader reader = queue.poll();
+                emitter.accept(reader.current);
+                if (reader.next()) {
+                    queue.add(reader);
+                }
+            }
+        } finally {
+            for (RunReader reader : readers) {
+                reader.in.close();
+            }
+        }
+    }
+
+    private Path createRunFile() throws IOException {
+        return tempDirectory == null
+                ? Files.createTempFile("poi-tools-sort", ".run")
+                : Files.createTempFile(tempDirectory, "poi-tools-sort", ".run");
+    }
+
+    private DataOutputStream openRun(Path run) throws IOException {
+        return new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(run), bufferSize));
+    }
+
+    private void writeRow(DataOutputStream out, SortRow row) {
+        try {
+            out.writeByte(ROW_MARKER);
+            for (String value : row.getValues()) {
+                if (value == null) {
+                    writeVarInt(out, 0);
+                } else {
+                    byte[] bytes = encode(value);
+                    writeVarInt(out, bytes.length + 1);
+                    out.write(bytes);
+                }
+            }
+            for (double key : row.getKeys()) {
+                out.writeDouble(key);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * 文字列を修正 UTF-8 に変換する。
+     * <pre>
+     *     char 単位で変換するため、ペアになっていないサロゲートも欠落なく復元できます。
+     * </pre>
+     */
+    private static byte[] encode(String value) {
+        int length = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            length += c != 0 && c < 0x80 ? 1 : c < 0x800 ? 2 : 3;
+        }
+        byte[] bytes = new byte[length];
+        int pos = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c != 0 && c < 0x80) {
+                bytes[pos++] = (byte) c;
+            } else if (c < 0x800) {
+                bytes[pos++] = (byte) (0xC0 | (c >> 6));
+                bytes[pos++] = (byte) (0x80 | (c & 0x3F));
+            } else {
+                bytes[pos++] = (byte) (0xE0 | (c >> 12));
+                bytes[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                bytes[pos++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        return bytes;
+    }
+
+    private static String decode(byte[] bytes) {
+        char[] chars = new char[bytes.length];
+        int count = 0;
+        int pos = 0;
+        while (pos < bytes.length) {
+            int b = bytes[pos++] & 0xFF;
+            if ((b & 0x80) == 0) {
+                chars[count++] = (char) b;
+            } else if ((b & 0xE0) == 0xC0) {
+                chars[count++] = (char) (((b & 0x1F) << 6) | (bytes[pos++] & 0x3F));
+            } else {
+                chars[count++] = (char) (((b & 0x0F) << 12) | ((bytes[pos++] & 0x3F) << 6) | (bytes[pos++] & 0x3F));
+            }
+        }
+        return new String(chars, 0, count);
+    }
+
+    private static void writeVarInt(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private static int readVarInt(DataInputStream in) throws IOException {
+        int value = 0;
+        int shift = 0;
+        int b;
+        do {
+            b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    /**
+     * 行のヒープ使用量を見積もる。
+     * <pre>
+     *     配列・文字列のヘッダと参照を含めた概算値で、実際の使用量より大きめに見積もります。
+     * </pre>
+     */
+    private static long estimateSize(SortRow row) {
+        String[] values = row.getValues();
+        long size = 16 + 8 + 16 + 8L * values.length + 16 + 8L * row.getKeys().length + 8;
+        for (String value : values) {
+            if (value != null) {
+                size += 40 + 2L * value.length();
+            }
+        }
+        return size;
+    }
+
+    @Override
+    public void close() throws IOException {
+        buffer = null;
+        for (Run run : runs) {
+            Files.deleteIfExists(run.path);
+        }
+        runs.clear();
+    }
+
+    /**
+     * 並び替え対象の行。
+     * <pre>
+     *     比較の度に変換しないよう、数値列のキーは追加時に変換した値を保持します。
+     * </pre>
+     */
+    static final class SortRow {
+        private final String[] values;
+        private final double[] keys;
+
+        private SortRow(String[] values, double[] keys) {
+            this.values = values;
+            this.keys = keys;
+        }
+
+        String[] getValues() {
+            return values;
+        }
+
+        double[] getKeys() {
+            return keys;
+        }
+    }
+
+    /**
+     * 一時ファイルに退避したラン。
+     * <pre>
+     *     階層は退避時のランを 0 とし、マージする度にマージ元の最大値 + 1 とします。
+     * </pre>
+     */
+    private static final class Run {
+        private final Path path;
+        private final int level;
+
+        private Run(Path path, int level) {
+            this.path = path;
+            this.level = level;
+        }
+    }
+
+    /**
+     * 重複除外が有効な場合に、直前と同じ行を読み飛ばして行を渡すクラス。
+     */
+    private class RowEmitter implements Consumer<SortRow> {
+        private final Consumer<SortRow> consumer;
+        private SortRow previous;
+
+        private RowEmitter(Consumer<SortRow> consumer) {
+            this.consumer = consumer;
+        }
+
+        @Override
+        public void accept(SortRow row) {
+            if (distinct && previous != null && comparator.compare(previous, row) == 0) {
+                return;
+            }
+            previous = row;
+            consumer.accept(row);
+        }
+    }
+
+    /**
+     * ランを先頭から 1 行ずつ読み込むクラス。
+     */
+    private class RunReader {
+        private final DataInputStream in;
+        private final int order;
+        private SortRow current;
+
+        private RunReader(Run run, int order) throws IOException {
+            this.in = new DataInputStream(new BufferedInputStream(Files.newInputStream(run.path), bufferSize));
+            this.order = order;
+        }
+
+        private boolean next() throws IOException {
+            int marker = in.readUnsignedByte();
+            if (marker == END_MARKER) {
+                current = null;
+                return false;
+            }
+            if (marker != ROW_MARKER) {
+                throw new IOException("Corrupted sort run. marker=[" + marker + "]");
+            }
+            String[] values = new String[columnCount];
+            for (int i = 0; i < columnCount; i++) {
+                int length = readVarInt(in);
+                if (length > 0) {
+                    byte[] bytes = new byte[length - 1];
+                    in.readFully(bytes);
+                    values[i] = decode(bytes);
+                }
+            }
+            double[] keys = new double[keyCount];
+            for (int i = 0; i < keyCount; i++) {
+                keys[i] = in.readDouble();
+            }
+            current = new SortRow(values, keys);
+            return true;
+        }
+    }
+
+}
@@ -0,0 +1,92 @@
+package naganaga.ss.writer;
+
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * 書き込み前の並び替えに関する設定を保持するクラス。
+ * <pre>
+ *     {@link SpreadSheetWriter} に指定すると、行はシートへ直接書き込まれず、
+ *     指定した列番号の順に並び替えてから {@code close} 時に書き込まれます。
+ *     保持する行の見積りサイズが上限を超えると、並び替え済の行を一時ファイルへ退避し、
+ *     最後にマージしながらシートへ書き込むため、行数に関わらずヒープ使用量は上限以内に収まります。
+ * </pre>
+ */
+public class SortOption {
+
+    /** ヒープ使用量の上限の既定値（32MB）. */
+    public static final long DEFAULT_MEMORY_LIMIT = 32L * 1024 * 1024;
+    /** ヒープ使用量の上限の最小値（64KB）. */
+    public static final long MIN_MEMORY_LIMIT = 64L * 1024;
+
+    /** 並び替えのキーとなる列番号（優先順）. */
+    private final int[] indexes;
+    /** 重複行を除外するか否か. */
+    private boolean distinct = false;
+    /** ヒープ使用量の上限（バイト）. */
+    private long memoryLimit = DEFAULT_MEMORY_LIMIT;
+    /** 一時ファイルの出力先（null の場合はシステムの一時ディレクトリ）. */
+    private Path tempDirectory;
+
+    /**
+     * コンストラクタ。
+     *
+     * @param indexes 並び替えのキーとなる {@link naganaga.ss.annotations.Column#index()}（優先順）
+     */
+    public SortOption(int... indexes) {
+        if (indexes == null || indexes.length == 0) {
+            throw new IllegalArgumentException("Sort index not specified.");
+        }
+        this.indexes = Arrays.copyOf(indexes, indexes.length);
+    }
+
+    public int[] getIndexes() {
+        return Arrays.copyOf(indexes, indexes.length);
+    }
+
+    public boolean isDistinct() {
+        return distinct;
+    }
+
+    /**
+     * 重複行を除外するか否かを設定する。
+     * <pre>
+     *     全ての列の値が一致する行を重複とみなし、最初の 1 行のみを書き込みます。
+     * </pre>
+     *
+     * @param distinct 重複行を除外する場合は true
+     */
+    public void setDistinct(boolean distinct) {
+        this.distinct = distinct;
+    }
+
+    public long getMemoryLimit() {
+        return memoryLimit;
+    }
+
+    /**
+     * 並び替えで使用するヒープの上限を設定する。
+     * <pre>
+     *     一時ファイルへ退避する前の行は上限から出力バッファ 1 個分を除いたサイズまで保持し、
+     *     マージ時の入出力バッファは上限の半分以内に抑えるため、退避・マージのいずれの段階でも上限以内に収まります。
+     *     {@link #MIN_MEMORY_LIMIT} 未満は指定できません。
+     * </pre>
+     *
+     * @param memoryLimit ヒープ使用量の上限（バイト）
+     */
+    public void setMemoryLimit(long memoryLimit) {
+        if (memoryLimit < MIN_MEMORY_LIMIT) {
+            throw new IllegalArgumentException("An invalid memory limit was specified. memoryLimit=[" + memoryLimit + "]");
+        }
+        this.memoryLimit = memoryLimit;
+    }
+
+    public Path getTempDirectory() {
+        return tempDirectory;
+    }
+
+    public void setTempDirectory(Path tempDirectory) {
+        this.tempDirectory = tempDirectory;
+    }
+
+}
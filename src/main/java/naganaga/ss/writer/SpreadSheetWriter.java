@@ -2,6 +2,7 @@ package naganaga.ss.writer;
 
 import lombok.Data;
 import lombok.extern.slf4j.Slf4j;
+import naganaga.ss.annotations.Aggregate;
 import naganaga.ss.annotations.BodyStyle;
 import naganaga.ss.annotations.Column;
 import naganaga.ss.annotations.HeaderStyle;
@@ -30,6 +31,7 @@ import java.io.UncheckedIOException;
 import java.lang.reflect.InvocationTargetException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -48,8 +50,26 @@ public class SpreadSheetWriter<T> implements AutoCloseable {
 
     private SpreadSheetRowSpec<T> rowSpec;
     private StyleContext context;
+    private AggregateContext aggregateContext;
+    private ExternalRowSorter sorter;
+    private int[] sortKeyIndexes;
 
     public SpreadSheetWriter(OutputStream out, Class<T> spec) {
+        this(out, spec, null);
+    }
+
+    /**
+     * コンストラクタ。
+     * <pre>
+     *     {@link SortOption} を指定した場合、{@link #writeBody(Object)} で渡された行は並び替えのため保持され、
+     *     {@link #close()} 時に並び替えた順でシートへ書き込まれます。
+     * </pre>
+     *
+     * @param out 出力先
+     * @param spec 行の情報が設定されたクラス
+     * @param sortOption 並び替えの設定（並び替えない場合は null）
+     */
+    public SpreadSheetWriter(OutputStream out, Class<T> spec, SortOption sortOption) {
         this.out = out;
         wb = new SXSSFWorkbook(new XSSFWorkbook());
 
@@ -62,6 +82,10 @@ public class SpreadSheetWriter<T> implements AutoCloseable {
 
         setColWidth();
         createStyleContext();
+        createAggregateContext();
+        if (sortOption != null) {
+            createSorter(sortOption);
+        }
         if (spreadSheetSpec.hasHeader()) {
             writeHeader();
         }
@@ -153,6 +177,79 @@ public class SpreadSheetWriter<T> implements AutoCloseable {
         this.context = context;
     }
 
+    private void createAggregateContext() {
+        Aggregate[] aggregates = new Aggregate[rowSpec.getLastIndex() + 1];
+        Arrays.fill(aggregates, Aggregate.NONE);
+        rowSpec.getColumnSpecs().forEach(cs -> aggregates[cs.getIndex()] = cs.getAggregate());
+        this.aggregateContext = new AggregateContext(aggregates);
+    }
+
+    private void createSorter(SortOption sortOption) {
+        List<Integer> numericIndexes = new ArrayList<>();
+        Comparator<ExternalRowSorter.SortRow> comparator = null;
+        for (int index : sortOption.getIndexes()) {
+            SpreadSheetRowSpec.ColumnSpec columnSpec = rowSpec.getColumnSpecs().stream()
+                    .filter(cs -> cs.getIndex() == index)
+                    .findFirst()
+                    .orElseThrow(() -> new IllegalArgumentException(
+                            "@Column not defined for sort index. type=[" + rowSpec.getType().getName() + "], index=[" + index + "]"));
+            Comparator<ExternalRowSorter.SortRow> c;
+            if (columnSpec.getCellType() == CellType.NUMERIC) {
+                // 数値列は writeBody で変換済のキーで比較する
+                int keyIndex = numericIndexes.size();
+                numericIndexes.add(index);
+                c = (r1, r2) -> compareNumber(r1.getKeys()[keyIndex], r2.getKeys()[keyIndex]);
+            } else {
+                c = (r1, r2) -> compareString(r1.getValues()[index], r2.getValues()[index]);
+            }
+            comparator = comparator == null ? c : comparator.thenComparing(c);
+        }
+        if (sortOption.isDistinct()) {
+            // 全列が一致した場合のみ同値とし、重複行を隣接させる
+            for (int i = 0; i <= rowSpec.getLastIndex(); i++) {
+                int index = i;
+                comparator = comparator.thenComparing(
+                        (r1, r2) -> compareString(r1.getValues()[index], r2.getValues()[index]));
+            }
+        }
+        this.sortKeyIndexes = numericIndexes.stream().mapToInt(Integer::intValue).toArray();
+        this.sorter = new ExternalRowSorter(comparator, sortOption, rowSpec.getLastIndex() + 1, sortKeyIndexes.length);
+    }
+
+    private double[] createSortKeys(String[] array) {
+        double[] keys = new double[sortKeyIndexes.length];
+        for (int k = 0; k < sortKeyIndexes.length; k++) {
+            String value = array[sortKeyIndexes[k]];
+            if (StringUtils.isEmpty(value)) {
+                keys[k] = Double.NaN;
+                continue;
+            }
+            try {
+                keys[k] = Double.parseDouble(value.replaceAll(",", ""));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("An unparsable numeric value was specified. type=["
+                        + rowSpec.getType().getName() + "], index=[" + sortKeyIndexes[k] + "], value=[" + value + "]", e);
+            }
+        }
+        return keys;
+    }
+
+    private static int compareNumber(double v1, double v2) {
+        // 空の値（NaN）は先頭とする
+        if (Double.isNaN(v1) || Double.isNaN(v2)) {
+            return Boolean.compare(!Double.isNaN(v1), !Double.isNaN(v2));
+        }
+        return Double.compare(v1, v2);
+    }
+
+    private static int compareString(String v1, String v2) {
+        // 空の値は先頭とする
+        if (StringUtils.isEmpty(v1) || StringUtils.isEmpty(v2)) {
+            return Boolean.compare(StringUtils.isNotEmpty(v1), StringUtils.isNotEmpty(v2));
+        }
+        return v1.compareTo(v2);
+    }
+
     private CellStyle createHeaderStyle(HeaderStyle style) {
 
         // 罫線設定
@@ -265,22 +362,41 @@ public class SpreadSheetWriter<T> implements AutoCloseable {
             }
             bodyArray[col.index()] = value;
         });
-        List<List<String>> bodies = new ArrayList<>();
-        bodies.add(Arrays.asList(bodyArray));
-
-        for (List<String> b : bodies) {
-            Row bodyRow = createRow();
-            bodyRow.setHeight(context.getBodyHeight());
-            String[] array = b.toArray(new String[]{});
-            int colOffset = spreadSheetSpec.getStartCol();
-            IntStream.range(0, array.length)
-                    .forEach(i -> {
-                        CellType cellType = rowSpec.getColumnSpecs().get(i).getCellType();
-                        Cell cell = bodyRow.createCell(i + colOffset, cellType);
-                        setCellValue(cell, cellType, array[i]);
-                        cell.setCellStyle(overrideStyleIfFirstRow(context.getBodyCellStyle(i)));
-                    });
+
+        if (sorter != null) {
+            try {
+                sorter.add(bodyArray, createSortKeys(bodyArray));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        } else {
+            writeRow(bodyArray);
         }
+    }
+
+    private void writeRow(String[] array) {
+        Row bodyRow = createRow();
+        bodyRow.setHeight(context.getBodyHeight());
+        int colOffset = spreadSheetSpec.getStartCol();
+        IntStream.range(0, array.length)
+                .forEach(i -> {
+                    CellType cellType = rowSpec.getColumnSpecs().get(i).getCellType();
+                    Cell cell = bodyRow.createCell(i + colOffset, cellType);
+                    String value = array[i];
+                    if (cellType == CellType.NUMERIC && StringUtils.isNotEmpty(value)) {
+                        // 数値への変換は 1 回のみ行い、セルと集計で共用する
+                        double number = Double.parseDouble(value.replaceAll(",", ""));
+                        cell.setCellValue(number);
+                        aggregate(i, number);
+                    } else {
+                        setCellValue(cell, value);
+                        if (StringUtils.isNotEmpty(value)) {
+                            // 数値列以外は件数のみ集計可能なことを SpreadSheetRowSpec で検証済
+                            aggregate(i, 0d);
+                        }
+                    }
+                    cell.setCellStyle(overrideStyleIfFirstRow(context.getBodyCellStyle(i)));
+                });
         bodyIndex++;
     }
 
@@ -299,30 +415,81 @@ public class SpreadSheetWriter<T> implements AutoCloseable {
         }
     }
 
-    private void setCellValue(Cell cell, CellType type, String value) {
+    private void aggregate(int i, double value) {
+        if (aggregateContext.isAggregated(i)) {
+            aggregateContext.accept(i, value);
+        }
+    }
+
+    private void setCellValue(Cell cell, String value) {
         if (StringUtils.isEmpty(value)) {
             cell.setCellValue(value);
         } else {
-            if (type == CellType.NUMERIC) {
-                cell.setCellValue(Double.valueOf(value.replaceAll(",", "")));
-            } else {
-                cell.setCellValue(new XSSFRichTextString(value));
-            }
+            cell.setCellValue(new XSSFRichTextString(value));
         }
     }
 
     private void writeEnd() {
+        if (context.getBody() == null && !aggregateContext.hasAggregate()) {
+            return;
+        }
+        CellStyle cellStyle = createCellStyle();
         if (context.getBody() != null) {
-            CellStyle cellStyle = createCellStyle();
             cellStyle.setBorderTop(context.getBodySurroundStyle());
             cellStyle.setTopBorderColor(context.getBodySurroundColor().getIndex());
+        }
+
+        Row footerRow = createRow();
+        int colOffset = spreadSheetSpec.getStartCol();
+        IntStream.range(0, this.rowSpec.getLastIndex() + 1)
+                .forEach(i -> {
+                    Cell cell = CellUtil.createCell(footerRow, i + colOffset, null, cellStyle);
+                    if (aggregateContext.isAggregated(i)) {
+                        writeAggregate(cell, i, cellStyle);
+                    }
+                });
+    }
 
-            Row footerRow = createRow();
-            IntStream.range(0, this.rowSpec.getLastIndex() + 1)
-                    .forEach(i -> {
-                        int colOffset = spreadSheetSpec.getStartCol();
-                        CellUtil.createCell(footerRow, i + colOffset, null, cellStyle);
-                    });
+    private void writeAggregate(Cell cell, int i, CellStyle baseStyle) {
+        // 該当行が無い場合、件数以外は値を出力しない
+        long count = aggregateContext.getCounts()[i];
+        Aggregate aggregate = aggregateContext.getAggregates()[i];
+        if (count == 0 && aggregate != Aggregate.COUNT) {
+            return;
+        }
+
+        double value;
+        switch (aggregate) {
+            case SUM:
+                value = aggregateContext.getSum(i);
+                break;
+            case COUNT:
+                value = count;
+                break;
+            case MIN:
+                value = aggregateContext.getMins()[i];
+                break;
+            case MAX:
+                value = aggregateContext.getMaxs()[i];
+                break;
+            case AVG:
+                value = aggregateContext.getSum(i) / count;
+                break;
+            default:
+                return;
+        }
+        cell.setCellValue(value);
+
+        // 件数以外は列の書式を引き継ぐ
+        String format = rowSpec.getColumnSpecs().stream()
+                .filter(cs -> cs.getIndex() == i)
+                .map(SpreadSheetRowSpec.ColumnSpec::getFormat)
+                .findFirst().orElse("General");
+        if (aggregate != Aggregate.COUNT && !"General".equals(format)) {
+            CellStyle cellStyle = createCellStyle();
+            cellStyle.cloneStyleFrom(baseStyle);
+            cellStyle.setDataFormat((short) BuiltinFormats.getBuiltinFormat(format));
+            cell.setCellStyle(cellStyle);
         }
     }
 
@@ -332,11 +499,19 @@ public class SpreadSheetWriter<T> implements AutoCloseable {
 
     @Override
     public void close() {
-        writeEnd();
-        try {
-            wb.write(out);
-            wb.dispose();
-            wb.close();
+        // 並び替え時は close で全行を書き込むため、失敗時も一時ファイルを残さないよう必ず破棄する
+        try (SXSSFWorkbook workbook = wb) {
+            try {
+                if (sorter != null) {
+                    try (ExternalRowSorter s = sorter) {
+                        s.finish(this::writeRow);
+                    }
+                }
+                writeEnd();
+                workbook.write(out);
+            } finally {
+                workbook.dispose();
+            }
         } catch (IOException e) {
             throw new UncheckedIOException(e);
         }
@@ -373,4 +548,65 @@ public class SpreadSheetWriter<T> implements AutoCloseable {
 
     }
 
+    /**
+     * フッタ行の集計値を保持するクラス。
+     * <pre>
+     *     行の書き込み毎に更新する累積値のみを保持するため、行数に関わらず使用メモリは一定です。
+     * </pre>
+     */
+    @Data
+    private static class AggregateContext {
+        private final Aggregate[] aggregates;
+        private final long[] counts;
+        private final double[] sums;
+        /** 合計の丸め誤差の補正値（Neumaier 法）. */
+        private final double[] compensations;
+        private final double[] mins;
+        private final double[] maxs;
+
+        private AggregateContext(Aggregate[] aggregates) {
+            this.aggregates = aggregates;
+            this.counts = new long[aggregates.length];
+            this.sums = new double[aggregates.length];
+            this.compensations = new double[aggregates.length];
+            this.mins = new double[aggregates.length];
+            this.maxs = new double[aggregates.length];
+            Arrays.fill(this.mins, Double.POSITIVE_INFINITY);
+            Arrays.fill(this.maxs, Double.NEGATIVE_INFINITY);
+        }
+
+        private boolean hasAggregate() {
+            return Arrays.stream(aggregates).anyMatch(aggregate -> aggregate != Aggregate.NONE);
+        }
+
+        private boolean isAggregated(int i) {
+            return aggregates[i] != Aggregate.NONE;
+        }
+
+        private void accept(int i, double value) {
+            counts[i]++;
+            double sum = sums[i] + value;
+            // 無限大を含む場合は補正すると NaN になるため、補正しない
+            if (!Double.isInfinite(sum)) {
+                if (Math.abs(sums[i]) >= Math.abs(value)) {
+                    compensations[i] += (sums[i] - sum) + value;
+                } else {
+                    compensations[i] += (value - sum) + sums[i];
+                }
+            }
+            sums[i] = sum;
+            if (value < mins[i]) {
+                mins[i] = value;
+            }
+            if (value > maxs[i]) {
+                maxs[i] = value;
+            }
+        }
+
+        private double getSum(int i) {
+            return sums[i] + compensations[i];
+        }
+
+    }
+
 }